@@ -0,0 +1,60 @@
+// Cheap average hash. The image is shrunk to a grid of cells in a
+// single pass, then each cell brighter than the mean sets its bit.
+
+import java.util.*;
+
+public class AverageHasher implements Hasher{
+	final static String name = "average";
+
+	public String getName(){
+		return name;
+	}
+
+	public void hash(double[] image, int hashLength, BitSet hash) throws IllegalArgumentException{
+		if (hashLength < 4 || !Perceptual.isSquare(hashLength))
+			throw new IllegalArgumentException("Invalid hash length.");
+		int side = (int) Math.sqrt(hashLength);
+		double[] cells = shrink(image, side, side);
+
+		double avg = 0;
+		for (double cell : cells) avg += cell;
+		avg /= (double) hashLength;
+		for (int i = 0; i < hashLength; i++){
+			if (cells[i] > avg)
+				hash.set(i);
+		}
+	}
+
+	// Averages a square image into rows by cols cells, reading each pixel once
+	static double[] shrink(double[] image, int rows, int cols) throws IllegalArgumentException{
+		int width = (int) Math.sqrt(image.length);
+		if (width*width != image.length || width < rows || width < cols)
+			throw new IllegalArgumentException("Invalid image length.");
+
+		// Find the cell of every column and row once
+		int[] cellCol = new int[width];
+		int[] cellRow = new int[width];
+		int[] colCount = new int[cols];
+		int[] rowCount = new int[rows];
+		for (int i = 0; i < width; i++){
+			cellCol[i] = i*cols/width;
+			cellRow[i] = i*rows/width;
+			colCount[cellCol[i]]++;
+			rowCount[cellRow[i]]++;
+		}
+
+		double[] cells = new double[rows*cols];
+		for (int y = 0; y < width; y++){
+			int rowStart = cellRow[y]*cols;
+			int line = y*width;
+			for (int x = 0; x < width; x++)
+				cells[rowStart+cellCol[x]] += image[line+x];
+		}
+		// Cells may not all have the same size
+		for (int r = 0; r < rows; r++){
+			for (int c = 0; c < cols; c++)
+				cells[r*cols+c] /= (double) (rowCount[r]*colCount[c]);
+		}
+		return cells;
+	}
+}
@@ -0,0 +1,158 @@
+// Runs a whole queue of queries against the database without
+// any user input. Queries come from a directory or a manifest
+// with one path per line. Files are read, parsed, hashed and
+// searched by a pool of workers while results are written in
+// order as JSON lines. Progress is saved in a checkpoint file
+// next to the output so a killed job resumes where it stopped.
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class BatchSearch{
+	// Checkpoint is saved every time this many results are written
+	final static int checkpointInterval = 1000;
+
+	HashIndex<File> database;
+	Hasher hasher;
+	int tolerance; // In bits
+	int workers;
+
+	public BatchSearch(HashIndex<File> db, Hasher h, int tol, int nWorkers) throws IllegalArgumentException{
+		db.checkKey(h.getName());
+		database = db;
+		hasher = h;
+		tolerance = tol;
+		workers = nWorkers;
+	}
+
+	// Lists the queries in a stable order, so a resumed job skips the right ones
+	public static List<File> queries(File source) throws IOException{
+		List<File> queries = new ArrayList<File>();
+		if (source.isDirectory()){
+			queries = ImageHashSearch.pgmFiles(source);
+			Collections.<File>sort(queries);
+		} else{
+			for (String line : Files.readAllLines(source.toPath(), StandardCharsets.UTF_8)){
+				if (!line.trim().isEmpty())
+					queries.add(new File(line.trim()));
+			}
+		}
+		return queries;
+	}
+
+	// Searches every query of the source. A checkpoint left by an
+	// interrupted run of the same job is resumed, one left by another
+	// job is refused so its results don't get mixed with ours.
+	public void run(File source, File output) throws IOException, IllegalArgumentException{
+		List<File> queries = queries(source);
+		File checkpoint = new File(output.getPath() + ".checkpoint");
+		// The job is the source, its size, the tolerance and the hasher
+		String job = source.getAbsolutePath()+'\n'+queries.size()+'\n'+tolerance+'\n'+hasher.getName();
+		// Checkpoint holds the number of queries done and the output length at that point
+		int done = 0;
+		long written = 0;
+		if (checkpoint.exists()){
+			String[] saved = new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).split("\n", 2);
+			if (saved.length < 2 || !saved[1].equals(job))
+				throw new IllegalArgumentException("Checkpoint "+checkpoint.getPath()+" belongs to another job. "+
+													"Delete it or choose another output.");
+			String[] counts = saved[0].trim().split(" ");
+			done = Integer.parseInt(counts[0]);
+			written = Long.parseLong(counts[1]);
+			// If the output lost results, we can't trust any of it
+			if (output.length() < written){
+				System.out.println("Output is shorter than its checkpoint, starting over.");
+				done = 0;
+				written = 0;
+			} else
+				System.out.println("Resuming after "+done+" queries.");
+		}
+
+		// Anything written after the checkpoint is dropped and done again
+		try(RandomAccessFile outFile = new RandomAccessFile(output, "rw")){
+			outFile.setLength(written);
+		}
+
+		long startTime = System.nanoTime();
+		int startDone = done;
+
+		try(ReadAhead<File, String> ahead = new ReadAhead<File, String>(queries, done, workers,
+				new ReadAhead.Work<File, String>(){
+					public String run(File query){
+						return search(query);
+					}
+				});
+			BufferedWriter results = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(output, true), StandardCharsets.UTF_8))){
+			// Results come in the queries order
+			while (ahead.hasNext()){
+				String line = ahead.next();
+				results.write(line);
+				results.newLine();
+				written += line.getBytes(StandardCharsets.UTF_8).length + System.lineSeparator().length();
+				done++;
+
+				if (done % checkpointInterval == 0 || done == queries.size()){
+					results.flush();
+					saveCheckpoint(checkpoint, done, written, job);
+					System.out.print("\033[2K	"+done+" of "+queries.size()+" queries done\r");
+				}
+			}
+		}
+		// The job is over, a new run starts from scratch
+		Files.deleteIfExists(checkpoint.toPath());
+
+		long elapsed = System.nanoTime() - startTime;
+		int ran = done - startDone;
+		System.out.println("\033[2K"+ran+" queries searched in "+elapsed+" ns, "+
+							String.format("%.1f", ran*1e9/Math.max(elapsed, 1))+" queries per second.");
+	}
+
+	// The new checkpoint replaces the old one in a single move so a kill can't leave half of it
+	private static void saveCheckpoint(File checkpoint, int done, long written, String job) throws IOException{
+		Path temp = Paths.get(checkpoint.getPath() + ".tmp");
+		Files.write(temp, (done+" "+written+'\n'+job).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Hashes and searches a single query. Errors are reported in the
+	// result line so one bad file doesn't stop the whole batch.
+	private String search(File query){
+		StringBuilder line = new StringBuilder("{\"query\":");
+		quote(line, query.getPath());
+		try{
+			BitSet hash = ImageHashSearch.hashImage(Files.readAllBytes(query.toPath()), hasher);
+			List<Integer> distances = new ArrayList<Integer>();
+			List<File> matches = database.searchByDistance(hash, tolerance, distances);
+			line.append(",\"matches\":[");
+			for (int i = 0; i < matches.size(); i++){
+				if (i > 0) line.append(',');
+				line.append("{\"path\":");
+				quote(line, matches.get(i).getPath());
+				line.append(",\"distance\":").append(distances.get(i)).append('}');
+			}
+			line.append(']');
+		} catch(IOException | IllegalArgumentException | SecurityException e){
+			line.append(",\"error\":");
+			quote(line, e.toString());
+		}
+		return line.append('}').toString();
+	}
+
+	// Appends a string as a JSON string literal
+	private static void quote(StringBuilder line, String text){
+		line.append('"');
+		for (int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				line.append('\\').append(c);
+			else if (c < 32)
+				line.append(String.format("\\u%04x", (int) c));
+			else
+				line.append(c);
+		}
+		line.append('"');
+	}
+}
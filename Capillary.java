@@ -3,55 +3,156 @@
 // common prefixes (rapids) in each nodes to reduce the size 
 // and costs to function in a similar manner to radix trees.
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-public class Capillary<V>{
+public class Capillary<V> implements HashIndex<V>{
 	// Basic Node. Only Root should be a node
-	private class Node{
+	private static class Node{
 		Node child = null;
 		BitSet rapids = null;
 		int rLength = 0;
 	}
 	// Branches are like Nodes but have 
-	// an additional pointer to go "left"
-	private class Branch extends Node{
+	// an additional pointer to go "left".
+	// They also keep the AND and the OR of all
+	// the keys below them, to know which bits
+	// every key in the subtree agrees on. Summaries
+	// are plain words, lighter than BitSets and
+	// checked without allocating anything.
+	private static class Branch extends Node{
 		Node zero = null;
+		long[] and = null;
+		long[] or = null;
 	}
 
-	// Leaves are like node but hold a
-	// pointer to the "value" object
-	private class Leaf extends Node{
-		V value;
+	// Leaves are like node but hold a bucket of value
+	// ids. All values sharing the same hash go in the
+	// same bucket, which is a range of the packed ids.
+	// Node classes are static so they can be told apart
+	// with instanceof even though the tree is generic.
+	private static class Leaf extends Node{
+		int first;
+		int count;
+		int capacity;
 
-		Leaf(V newValue){
-			value = newValue;
-			child = null;
+		// The bucket starts with a single id at first
+		Leaf(int start){
+			first = start;
+			count = 1;
+			capacity = 1;
+		}
+	}
+
+	// Default store simply keeps the values in a list
+	private static class ListStore<V> implements ValueStore<V>{
+		ArrayList<V> values = new ArrayList<V>();
+
+		public int add(V value){
+			values.add(value);
+			return values.size()-1;
+		}
+
+		public V get(int id){
+			return values.get(id);
+		}
+
+		public int size(){
+			return values.size();
+		}
+
+		public void trim(){
+			values.trimToSize();
 		}
 	}
 
 	Node root;
 	int height; // This is the length of the key in bits
 	int size = 0;
+	ValueStore<V> store;
+	// Name of what made the keys, like the hasher. Searching
+	// with keys made by something else would be meaningless.
+	String keyName = null;
+	// Skip subtrees whose summaries show they can't match
+	boolean pruning = true;
+	// Buckets of every leaf, packed one after the other
+	int[] ids = new int[16];
+	int used = 0;
 
 	// Tree MUST be initialized with the
 	// length of the hash code used for keying
 	public Capillary(int h){
+		this(h, new ListStore<V>());
+	}
+
+	// A custom store can be given to keep values
+	// in a more compact form, like a PathPool
+	public Capillary(int h, ValueStore<V> valueStore){
 		root = new Node();
 		height = h;
+		store = valueStore;
+	}
+
+	public Capillary(int h, ValueStore<V> valueStore, String name){
+		this(h, valueStore);
+		keyName = name;
+	}
+
+	public String getKeyName(){
+		return keyName;
+	}
+
+	// Refuses keys that were not made the same way as ours
+	public void checkKey(String name) throws IllegalArgumentException{
+		if (keyName != null && !keyName.equals(name))
+			throw new IllegalArgumentException("Database keys were made by "+keyName+", not "+name+".");
 	}
 
 	// If the tree is empty, we simply create a 
 	// new leaf at the root. Otherwise we irrigate
 	public void put(V value, BitSet hash){
+		int id = store.add(value);
 		if (isEmpty()){
-			root.child = new Leaf(value);
+			root.child = newLeaf(id);
 			root.child.rapids = (BitSet) hash.clone();
 			root.child.rLength = height;
 		} else
-			irrigate(hash, value);
+			irrigate(hash, id);
 		size++;
 	}
 
+	// Rewrites every bucket back to back without the spare
+	// room left by duplicates. Best called once loading is done.
+	public void pack(){
+		int[] packed = new int[used];
+		int[] next = {0};
+		if (!isEmpty())
+			pack(root.child, packed, next);
+		ids = Arrays.copyOf(packed, next[0]);
+		used = next[0];
+		store.trim();
+	}
+
+	private void pack(Node cNode, int[] packed, int[] next){
+		// Follow the rapids down to the next branch or leaf
+		if (cNode instanceof Branch)
+			pack(((Branch) cNode).zero, packed, next);
+		if (cNode instanceof Leaf){
+			Leaf cLeaf = (Leaf) cNode;
+			System.arraycopy(ids, cLeaf.first, packed, next[0], cLeaf.count);
+			cLeaf.first = next[0];
+			cLeaf.capacity = cLeaf.count;
+			next[0] += cLeaf.count;
+		} else
+			pack(cNode.child, packed, next);
+	}
+
+	// Pruning can be turned off to measure what it saves
+	public void setPruning(boolean prune){
+		pruning = prune;
+	}
+
 	public int getSize(){
 		return size;
 	}
@@ -59,27 +160,298 @@ public class Capillary<V>{
 	// Navigates the whole tree wtht a tolerance of 100%
 	// This is a comprehensive traversal, DFS wise.
 	public List<V> values(){
-		List<V> matches = new ArrayList<V>();
-		BitSet hash = new BitSet();
-		if (!isEmpty())
-			navigate(hash, root.child, height, height, matches);
-		return matches;
+		return search(new BitSet(), height);
 	}
 
 	// Creates a list of values with keys within
 	// bitwise tolerance of received hash
 	public List<V> search(BitSet hash, int tolerance){
-		List<V> matches = new ArrayList<V>();
-		if (!isEmpty())
-			navigate(hash, root.child, height, tolerance, matches);
+		Hits hits = new Hits();
+		// A negative tolerance matches nothing
+		if (!isEmpty() && tolerance >= 0)
+			navigate(hash, keyOf(hash), root.child, height, tolerance, hits);
+		// Values are only fetched from the store for matches
+		List<V> matches = new ArrayList<V>(hits.size);
+		for (int i = 0; i < hits.size; i++)
+			matches.add(store.get(hits.ids[i]));
 		return matches;
 	}
 
+	// Like search, but the matches come sorted by their distance
+	// to the hash, and those distances are put in the given list
+	public List<V> searchByDistance(BitSet hash, int tolerance, List<Integer> distances){
+		SearchResult<V> result = searchByDistance(hash, tolerance);
+		distances.addAll(result.distances);
+		return result.matches;
+	}
+
+	// Same search, returned with the number of nodes it visited
+	public SearchResult<V> searchByDistance(BitSet hash, int tolerance){
+		if (tolerance < 0)
+			return new SearchResult<V>(new ArrayList<V>(), new ArrayList<Integer>(), true, 0);
+		Hits hits = new Hits();
+		hits.tolerance = tolerance;
+		if (!isEmpty())
+			navigate(hash, keyOf(hash), root.child, height, tolerance, hits);
+		int[] sorted = byDistance(hits.distances, hits.size, tolerance);
+
+		List<V> matches = new ArrayList<V>(hits.size);
+		List<Integer> distances = new ArrayList<Integer>(hits.size);
+		for (int i : sorted){
+			matches.add(store.get(hits.ids[i]));
+			distances.add(hits.distances[i]);
+		}
+		return new SearchResult<V>(matches, distances, true, hits.visited);
+	}
+
+	// Order of the first count hits by their distance, up to tolerance.
+	// Distances are small, so a counting sort does the job.
+	static int[] byDistance(int[] distances, int count, int tolerance){
+		int[] start = new int[tolerance+2];
+		for (int i = 0; i < count; i++)
+			start[distances[i]+1]++;
+		for (int d = 1; d < start.length; d++)
+			start[d] += start[d-1];
+		int[] sorted = new int[count];
+		for (int i = 0; i < count; i++)
+			sorted[start[distances[i]]++] = i;
+		return sorted;
+	}
+
+	// Result of a search with the nodes it visited. If it was done on
+	// a budget that ran out before the whole tolerance was covered,
+	// it is not complete.
+	public static class SearchResult<V>{
+		List<V> matches;
+		List<Integer> distances;
+		boolean complete;
+		int visited;
+
+		SearchResult(List<V> m, List<Integer> d, boolean c, int v){
+			matches = m;
+			distances = d;
+			complete = c;
+			visited = v;
+		}
+
+		// Matches, sorted by distance to the hash
+		public List<V> getMatches(){
+			return matches;
+		}
+
+		public List<Integer> getDistances(){
+			return distances;
+		}
+
+		public boolean isComplete(){
+			return complete;
+		}
+
+		public int getVisited(){
+			return visited;
+		}
+	}
+
+	// Like searchByDistance, but stops once maxVisits nodes were
+	// visited or maxNanos elapsed, returning what was found so far.
+	// Closest branches are explored first so the best matches come first.
+	public SearchResult<V> search(BitSet hash, int tolerance, int maxVisits, long maxNanos){
+		Hits hits = new Hits();
+		hits.tolerance = tolerance;
+		int[] visited = {0};
+		boolean complete = isEmpty() || explore(hash, keyOf(hash), tolerance, maxVisits, maxNanos, hits, visited);
+
+		// Leaves are reached by increasing distance, so no sorting needed
+		List<V> matches = new ArrayList<V>(hits.size);
+		List<Integer> distances = new ArrayList<Integer>(hits.size);
+		for (int i = 0; i < hits.size; i++){
+			matches.add(store.get(hits.ids[i]));
+			distances.add(hits.distances[i]);
+		}
+		return new SearchResult<V>(matches, distances, complete, visited[0]);
+	}
+
+	// Approximate heap used by the trie and its buckets, in bytes.
+	// Counts object headers and fields as on a 64 bit compressed oops JVM.
+	public long heapBytes(){
+		long bytes = 4L*ids.length;
+		if (!isEmpty())
+			bytes += heapBytes(root.child);
+		return bytes;
+	}
+
+	private long heapBytes(Node cNode){
+		long bytes = 40;
+		// A BitSet is an object and its array of longs
+		if (cNode.rapids != null)
+			bytes += 40 + 8*((cNode.rLength+63)/64);
+		// Summaries are arrays of longs
+		if (cNode instanceof Branch)
+			bytes += 2*(16 + 8*((height+63)/64)) + heapBytes(((Branch) cNode).zero);
+		if (!(cNode instanceof Leaf))
+			bytes += heapBytes(cNode.child);
+		return bytes;
+	}
+
+	// Saves the tree in the read only format of MappedCapillary.
+	// Values are saved as their string form, like a file path.
+	// Only works with keys of 64 bits or less.
+	public void save(File file) throws IOException{
+		if (height > 64)
+			throw new IllegalArgumentException("Only keys of 64 bits or less can be saved.");
+		// Number the nodes depth first, so we know where children are before writing
+		List<Node> nodes = new ArrayList<Node>();
+		if (!isEmpty())
+			number(root.child, nodes);
+		Map<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+		for (int i = 0; i < nodes.size(); i++)
+			index.put(nodes.get(i), i);
+
+		// Paths are saved as UTF-8, one after the other
+		byte[][] paths = new byte[store.size()][];
+		long pathBytes = 0;
+		for (int i = 0; i < paths.length; i++){
+			paths[i] = store.get(i).toString().getBytes(StandardCharsets.UTF_8);
+			pathBytes += paths[i].length;
+		}
+		byte[] name = (keyName == null) ? new byte[0] : keyName.getBytes(StandardCharsets.UTF_8);
+
+		int idCount = 0;
+		for (Node cNode : nodes){
+			if (cNode instanceof Leaf)
+				idCount += ((Leaf) cNode).count;
+		}
+		long nodesOffset = MappedCapillary.headerLength + name.length;
+		long idsOffset = nodesOffset + (long) MappedCapillary.nodeLength*nodes.size();
+		long pathIndexOffset = idsOffset + 4L*idCount;
+		long pathDataOffset = pathIndexOffset + 8L*(paths.length+1);
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+			out.writeInt(MappedCapillary.magic);
+			out.writeInt(MappedCapillary.version);
+			out.writeInt(height);
+			out.writeInt(size);
+			out.writeInt(nodes.size());
+			out.writeInt(idCount);
+			out.writeLong(nodesOffset);
+			out.writeLong(idsOffset);
+			out.writeLong(pathIndexOffset);
+			out.writeLong(pathDataOffset);
+			out.writeInt(paths.length);
+			out.writeInt(name.length);
+			out.write(name);
+
+			// Every node has its rapids and summaries as longs, then two ints:
+			// the children of a branch, or the bucket range of a leaf
+			int first = 0;
+			for (Node cNode : nodes){
+				long rapids = longOf(cNode.rapids);
+				if (cNode instanceof Branch){
+					Branch cBranch = (Branch) cNode;
+					out.writeLong(rapids);
+					out.writeLong(cBranch.and[0]);
+					out.writeLong(cBranch.or[0]);
+					out.writeInt(cNode.rLength);
+					out.writeInt(MappedCapillary.branch);
+					out.writeInt(index.get(cNode.child));
+					out.writeInt(index.get(cBranch.zero));
+				} else{
+					Leaf cLeaf = (Leaf) cNode;
+					out.writeLong(rapids);
+					out.writeLong(rapids);
+					out.writeLong(rapids);
+					out.writeInt(cNode.rLength);
+					out.writeInt(MappedCapillary.leaf);
+					out.writeInt(first);
+					out.writeInt(cLeaf.count);
+					first += cLeaf.count;
+				}
+			}
+			// Buckets, in the same order as the leaves
+			for (Node cNode : nodes){
+				if (cNode instanceof Leaf){
+					Leaf cLeaf = (Leaf) cNode;
+					for (int i = cLeaf.first; i < cLeaf.first + cLeaf.count; i++)
+						out.writeInt(ids[i]);
+				}
+			}
+			// Then where each path starts, and the paths
+			long offset = pathDataOffset;
+			for (byte[] path : paths){
+				out.writeLong(offset);
+				offset += path.length;
+			}
+			out.writeLong(offset);
+			for (byte[] path : paths)
+				out.write(path);
+		}
+	}
+
+	private void number(Node cNode, List<Node> nodes){
+		nodes.add(cNode);
+		if (cNode instanceof Branch){
+			number(cNode.child, nodes);
+			number(((Branch) cNode).zero, nodes);
+		}
+	}
+
+	private static long longOf(BitSet bits){
+		if (bits == null || bits.isEmpty())
+			return 0;
+		return bits.toLongArray()[0];
+	}
+
 	public boolean isEmpty(){
 		return (root.child == null);
 	}
 
-	private void irrigate(BitSet map, V value){
+	// Words of a key, as many as the height needs
+	private long[] keyOf(BitSet map){
+		return Arrays.copyOf(map.toLongArray(), (height+63)/64);
+	}
+
+	// Adds a key to the AND and OR summaries of a branch
+	private static void summarize(Branch cBranch, long[] key){
+		for (int w = 0; w < key.length; w++){
+			cBranch.and[w] &= key[w];
+			cBranch.or[w] |= key[w];
+		}
+	}
+
+	// Reserves room for a bucket at the end of the packed ids
+	private int reserve(int length){
+		if (used + length > ids.length)
+			ids = Arrays.copyOf(ids, Math.max(ids.length*2, used + length));
+		used += length;
+		return used - length;
+	}
+
+	// New leaf with a bucket holding only the given id
+	private Leaf newLeaf(int id){
+		Leaf nLeaf = new Leaf(reserve(1));
+		ids[nLeaf.first] = id;
+		return nLeaf;
+	}
+
+	// Adds an id to a bucket. If the bucket is full and not at the
+	// end of the packed ids, it moves to the end with twice the room.
+	private void addToBucket(Leaf cLeaf, int id){
+		if (cLeaf.count == cLeaf.capacity){
+			if (cLeaf.first + cLeaf.capacity == used){
+				reserve(1);
+				cLeaf.capacity++;
+			} else{
+				int nFirst = reserve(cLeaf.capacity*2);
+				System.arraycopy(ids, cLeaf.first, ids, nFirst, cLeaf.count);
+				cLeaf.first = nFirst;
+				cLeaf.capacity *= 2;
+			}
+		}
+		ids[cLeaf.first + cLeaf.count++] = id;
+	}
+
+	private void irrigate(BitSet map, int id){
+		long[] key = keyOf(map);
 		// We start with the root as the parent node
 		int cHeight = height;
 		Node cNode = root;
@@ -107,7 +479,9 @@ public class Capillary<V>{
 				cHeight -= cChild.rLength;
 				// If we reached leaf level, loop is over
 				if (cHeight == 0 ) break;
-				// Otherwise, we evaluate the branch
+				// Otherwise, the key now belongs to the branch summary
+				summarize((Branch) cChild, key);
+				// Then we evaluate the branch
 				lBranch = !map.get(--cHeight);
 				// And our current child becomes the parent
 				cNode = cChild;
@@ -116,7 +490,18 @@ public class Capillary<V>{
 				int brLoc = cCompare.length();
 				// We create a new leaf and a new branch
 				Branch nBranch = new Branch();
-				Leaf nLeaf = new Leaf(value);
+				Leaf nLeaf = newLeaf(id);
+
+				// The new branch summarizes the old child and the new key
+				if (cChild instanceof Branch){
+					nBranch.and = ((Branch) cChild).and.clone();
+					nBranch.or = ((Branch) cChild).or.clone();
+				} else{
+					// A leaf goes down to the bottom, so its rapids are its key
+					nBranch.and = keyOf((cChild.rapids == null) ? new BitSet() : cChild.rapids);
+					nBranch.or = nBranch.and.clone();
+				}
+				summarize(nBranch, key);
 
 				// If the split is not at the very beginning
 				// The new branch will have upper part of the rapids
@@ -169,17 +554,138 @@ public class Capillary<V>{
 				cLeaf = (Leaf) cNode.child;
 		else
 			cLeaf = (Leaf) ((Branch) cNode).zero;
-		// Then we look for next available spot to create a new leaf
-		while (cLeaf.child != null)
-			cLeaf = (Leaf) cLeaf.child;
-		cLeaf.child = new Leaf(value);
+		// Then we add the value to its bucket
+		addToBucket(cLeaf, id);
+	}
+
+	// Growable list of the ids of the matches. If a tolerance
+	// is set, the distance of every match is kept as well.
+	private class Hits{
+		int[] ids = new int[16];
+		int[] distances = null;
+		int tolerance = -1;
+		int size = 0;
+		// Nodes navigate went through to find them
+		int visited = 0;
+
+		// Copies a whole bucket at once
+		void add(Leaf cLeaf, int tolkens){
+			if (size + cLeaf.count > this.ids.length)
+				this.ids = Arrays.copyOf(this.ids, Math.max(this.ids.length*2, size + cLeaf.count));
+			System.arraycopy(Capillary.this.ids, cLeaf.first, this.ids, size, cLeaf.count);
+			if (tolerance >= 0){
+				if (distances == null || distances.length < this.ids.length)
+					distances = (distances == null) ? new int[this.ids.length] : Arrays.copyOf(distances, this.ids.length);
+				Arrays.fill(distances, size, size + cLeaf.count, tolerance - tolkens);
+			}
+			size += cLeaf.count;
+		}
+	}
+
+	// Streams of the best first search, holding the nodes themselves
+	private static class NodeStreams extends Streams{
+		Node[][] nodes;
+		// Node taken by the last poll
+		Node node;
+
+		NodeStreams(int tolerance){
+			super(tolerance);
+			nodes = new Node[tolerance+1][];
+		}
+
+		void resize(int t, int length){
+			nodes[t] = (nodes[t] == null) ? new Node[length] : Arrays.copyOf(nodes[t], length);
+		}
+
+		void add(Node n, int h, int t){
+			// push may grow the stack, so it must run before we index it
+			int slot = push(h, t);
+			nodes[t][slot] = n;
+		}
+
+		void poll(){
+			int last = pop();
+			node = nodes[tolkens][last];
+			nodes[tolkens][last] = null;
+		}
+	}
+
+	// Best first version of navigate. Streams with the most tolkens left
+	// are closest to the map, so they are explored first and leaves are
+	// reached by increasing distance. Returns true if every stream was
+	// explored before the budget ran out.
+	private boolean explore(BitSet map, long[] key, int tolkens, int maxVisits, long maxNanos, Hits matches, int[] visited){
+		long startTime = System.nanoTime();
+		int polls = 0;
+		NodeStreams streams = new NodeStreams(Math.max(tolkens, 0));
+		enter(map, key, root.child, height, tolkens, streams, visited);
+
+		while (!streams.isEmpty()){
+			// Time is only checked every few polls, it is not free
+			if (visited[0] >= maxVisits || ((++polls & 63) == 0 && System.nanoTime() - startTime > maxNanos))
+				return false;
+			streams.poll();
+			Node cNode = streams.node;
+			int cTolkens = streams.tolkens;
+			// At leaf level, we store the whole bucket
+			if (streams.height == 0){
+				matches.add((Leaf) cNode, cTolkens);
+				continue;
+			}
+			// Otherwise the branch the map agrees with keeps its tolkens
+			// and the other one costs a tolken, if we have any left
+			int cHeight = streams.height-1;
+			Node right = cNode.child;
+			Node left = ((Branch) cNode).zero;
+			boolean goRight = map.get(cHeight);
+			enter(map, key, goRight ? right : left, cHeight, cTolkens, streams, visited);
+			if (cTolkens > 0)
+				enter(map, key, goRight ? left : right, cHeight, cTolkens-1, streams, visited);
+		}
+		return true;
 	}
 
-	private void navigate(BitSet map, Node start, int drop, int tolkens, List<V> matches){
+	// Pays for the rapids of a node, like in navigate, and adds
+	// it to the streams if there are tolkens left
+	private void enter(BitSet map, long[] key, Node cNode, int cHeight, int cTolkens, NodeStreams streams, int[] visited){
+		visited[0]++;
+		if (cNode.rLength > 0){
+			BitSet cCompare = map.get(cHeight-cNode.rLength,cHeight);
+			cCompare.xor(cNode.rapids);
+			cTolkens -= cCompare.cardinality();
+			cHeight -= cNode.rLength;
+		}
+		if (cTolkens < 0) return;
+		if (cHeight > 0 && hopeless(key, (Branch) cNode, cHeight, cTolkens)) return;
+		streams.add(cNode, cHeight, cTolkens);
+	}
+
+	// Checks the branch summaries for bits where every key below
+	// disagrees with the map. Each of them will cost a tolken
+	// whatever the path, so if there are more than we have, we
+	// don't need to go down at all.
+	private boolean hopeless(long[] key, Branch cBranch, int cHeight, int cTolkens){
+		// Every key can't differ by more than the bits left
+		if (!pruning || cTolkens >= cHeight) return false;
+		// Map has a one where all keys have a zero, or
+		// a zero where all keys have a one. Only the
+		// bits below the branch count, a word at a time.
+		int costs = 0;
+		for (int w = 0; w <= (cHeight-1)/64; w++){
+			long differ = (key[w] & ~cBranch.or[w]) | (cBranch.and[w] & ~key[w]);
+			if (w == (cHeight-1)/64 && cHeight%64 != 0)
+				differ &= (1L << cHeight%64) - 1;
+			costs += Long.bitCount(differ);
+		}
+		return costs > cTolkens;
+	}
+
+	private void navigate(BitSet map, long[] key, Node start, int drop, int tolkens, Hits matches){
 		// Set current navigation data from received specifications
 		Node cNode = start;
 		int cHeight = drop;
 		int cTolkens = tolkens;
+		matches.visited++;
 
 		// While we're not at leaf level
 		while (cHeight > 0){
@@ -200,28 +706,27 @@ public class Capillary<V>{
 			}
 			// If we're still not a leaf level, we have a branch
 			if (cHeight > 0){
+				// If its summary says no key below is close enough, we stop here
+				if (hopeless(key, (Branch) cNode, cHeight, cTolkens)) return;
 				// We look at the map
 				if (map.get(--cHeight)){
 					// If we map says to go right but we have tolkens left,
 					if (cTolkens > 0)
-						navigate(map,((Branch) cNode).zero,cHeight,cTolkens-1,matches);
+						navigate(map,key,((Branch) cNode).zero,cHeight,cTolkens-1,matches);
 					// We navigate left first then we go right
 					cNode = cNode.child;
 				} else{
 					// If we map says to go left but we have tolkens left,
 					if (cTolkens > 0)
-						navigate(map,cNode.child,cHeight,cTolkens-1,matches);
+						navigate(map,key,cNode.child,cHeight,cTolkens-1,matches);
 					// We navigate right first then we go right
 					cNode = ((Branch) cNode).zero;
 				}
+				matches.visited++;
 			}
 		}
 
-		// If we reach leaf level, we store all the values in the list
-		Leaf cLeaf = (Leaf) cNode;
-		while (cLeaf != null){
-			matches.add(cLeaf.value);
-			cLeaf = (Leaf) cLeaf.child;
-		}
+		// If we reach leaf level, we store the whole bucket in the list
+		matches.add((Leaf) cNode, cTolkens);
 	}
 }
@@ -0,0 +1,211 @@
+// Measures how Capillary scales on synthetic hashes, without needing
+// an image database. For each distribution and size, it times the
+// insertions, then the searches at a few tolerances, and writes the
+// results to BenchmarkReport.csv so runs can be compared.
+// It can also write synthetic PGM images to test the whole program.
+//
+// Usage: java CapillaryBenchmark [-sizes 1000,10000,...] [-queries <count>]
+//                               [-pgm <directory> <count>]
+// Sizes up to 10000000 work, given enough heap (-Xmx). Heap per entry
+// is measured between collections, so it is noisy on small sizes and
+// reported as n/a when the tree takes less than heapNoise.
+
+import java.io.*;
+import java.util.*;
+
+public class CapillaryBenchmark{
+	final static int hashLength = 64;
+	final static int[] tolerances = {0, 5, 10, 15, 20}; // In percent, like the search prompt
+	final static String[] distributions = {"uniform", "clustered", "duplicates"};
+	final static long seed = 2017;
+	// Heap differences below this are mostly collector noise,
+	// which reached about 800 KB between runs on 10000 keys
+	final static long heapNoise = 4 << 20;
+
+	public static void main(String[] args) throws IOException{
+		int[] sizes = {1000, 10000, 100000, 1000000};
+		int queries = 1000;
+		int arg = 0;
+		while (arg < args.length){
+			if (args[arg].equals("-sizes") && arg+1 < args.length){
+				String[] parts = args[arg+1].split(",");
+				sizes = new int[parts.length];
+				for (int i = 0; i < parts.length; i++)
+					sizes[i] = Integer.parseInt(parts[i].trim());
+				arg += 2;
+			} else if (args[arg].equals("-queries") && arg+1 < args.length){
+				queries = Integer.parseInt(args[arg+1]);
+				arg += 2;
+			} else if (args[arg].equals("-pgm") && arg+2 < args.length){
+				writeImages(new File(args[arg+1]), Integer.parseInt(args[arg+2]));
+				arg += 3;
+			} else{
+				System.out.println("Usage: CapillaryBenchmark [-sizes 1000,10000,...] [-queries <count>] [-pgm <directory> <count>]");
+				return;
+			}
+		}
+
+		warmUp();
+		try(BufferedWriter report = new BufferedWriter(new FileWriter("BenchmarkReport.csv"))){
+			report.append("Distribution,Size,Insertions per second,Heap bytes per entry,Estimated bytes per entry,"+
+							"Tolerance,Latency p50 (ns),Latency p90 (ns),Latency p99 (ns),Latency max (ns),"+
+							"Mean nodes visited,Mean hits,Hash length = "+hashLength+",Queries = "+queries);
+			report.newLine();
+			for (String distribution : distributions){
+				for (int size : sizes){
+					run(distribution, size, queries, report);
+					report.flush();
+				}
+			}
+		}
+	}
+
+	// Compiling the code takes many calls, so a small tree is searched
+	// at every tolerance long enough for the JIT to be done with it
+	private static void warmUp(){
+		System.out.print("\033[2K	Warming up\r");
+		Random random = new Random(seed);
+		Capillary<File> database = new Capillary<File>(hashLength, new PathPool());
+		long[] keys = keys("clustered", 10000, random);
+		for (int i = 0; i < keys.length; i++)
+			database.put(new File("imgdb/synthetic"+i+".pgm"), BitSet.valueOf(new long[]{keys[i]}));
+		database.pack();
+		for (int round = 0; round < 20; round++){
+			for (int tolerance : tolerances){
+				for (int q = 0; q < 500; q++){
+					long key = keys[random.nextInt(keys.length)] ^ (1L << random.nextInt(hashLength));
+					database.searchByDistance(BitSet.valueOf(new long[]{key}), (tolerance*hashLength)/100);
+				}
+			}
+		}
+	}
+
+	// Builds a tree of the given distribution and size, then searches it
+	private static void run(String distribution, int size, int queries, BufferedWriter report) throws IOException{
+		System.out.print("\033[2K	Generating "+size+" "+distribution+" hashes\r");
+		long[] keys = keys(distribution, size, new Random(seed));
+
+		// Insert and time, measuring the heap the tree takes
+		PathPool paths = new PathPool();
+		Capillary<File> database = new Capillary<File>(hashLength, paths);
+		long heapBefore = usedHeap();
+		System.out.print("\033[2K	Inserting "+size+" "+distribution+" hashes\r");
+		long startTime = System.nanoTime();
+		for (int i = 0; i < size; i++)
+			database.put(new File("imgdb/synthetic"+i+".pgm"), BitSet.valueOf(new long[]{keys[i]}));
+		database.pack();
+		long elapsed = System.nanoTime() - startTime;
+		long heapUsed = usedHeap() - heapBefore;
+		double insertRate = size*1e9/Math.max(elapsed, 1);
+		String measured = (heapUsed < heapNoise) ? "n/a" : String.valueOf(heapUsed/size);
+		long estimate = (database.heapBytes() + paths.heapBytes())/size;
+
+		// Queries are stored hashes with a few bits flipped, like near duplicates
+		Random random = new Random(seed+1);
+		BitSet[] hashes = new BitSet[queries];
+		for (int q = 0; q < queries; q++){
+			long key = keys[random.nextInt(size)];
+			int flips = random.nextInt(5);
+			for (int f = 0; f < flips; f++)
+				key ^= 1L << random.nextInt(hashLength);
+			hashes[q] = BitSet.valueOf(new long[]{key});
+		}
+
+		// The queries also run once untimed on this tree, so the
+		// first row doesn't pay for bringing it into the caches
+		System.out.print("\033[2K	Warming up on "+size+" "+distribution+" hashes\r");
+		int widest = (tolerances[tolerances.length-1]*hashLength)/100;
+		for (int q = 0; q < queries; q++)
+			database.searchByDistance(hashes[q], widest);
+
+		for (int tolerance : tolerances){
+			System.out.print("\033[2K	Searching "+size+" "+distribution+" hashes at "+tolerance+"%\r");
+			int bits = (tolerance*hashLength)/100;
+			long[] latencies = new long[queries];
+			long visited = 0;
+			long hits = 0;
+			for (int q = 0; q < queries; q++){
+				// Timed like batch mode searches, which also counts the visits
+				startTime = System.nanoTime();
+				Capillary.SearchResult<File> result = database.searchByDistance(hashes[q], bits);
+				latencies[q] = System.nanoTime() - startTime;
+				hits += result.getMatches().size();
+				visited += result.getVisited();
+			}
+			Arrays.sort(latencies);
+			report.append(distribution+','+size+','+String.format("%.0f", insertRate)+','+measured+','+estimate+','+
+							tolerance+','+percentile(latencies, 50)+','+percentile(latencies, 90)+','+
+							percentile(latencies, 99)+','+latencies[queries-1]+','+String.format("%.1f", (double) visited/queries)+','+
+							String.format("%.2f", (double) hits/queries));
+			report.newLine();
+		}
+		System.out.println("\033[2K"+distribution+" "+size+": "+String.format("%.0f", insertRate)+" insertions per second, "+
+							measured+" bytes per entry measured, "+estimate+" estimated.");
+	}
+
+	// Heap in use after a collection, as close to live data as we can get
+	static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long percentile(long[] sorted, int percent){
+		return sorted[Math.min(sorted.length-1, sorted.length*percent/100)];
+	}
+
+	// Uniform keys are all random. Clustered keys are a few bits away from one
+	// of a number of centers. Duplicates keys mostly repeat a small set of keys.
+	private static long[] keys(String distribution, int size, Random random){
+		long[] keys = new long[size];
+		if (distribution.equals("uniform")){
+			for (int i = 0; i < size; i++)
+				keys[i] = random.nextLong();
+		} else if (distribution.equals("clustered")){
+			long[] centers = new long[Math.max(1, size/100)];
+			for (int i = 0; i < centers.length; i++)
+				centers[i] = random.nextLong();
+			for (int i = 0; i < size; i++){
+				// About 8 bits flipped from the center
+				long noise = random.nextLong() & random.nextLong() & random.nextLong();
+				keys[i] = centers[random.nextInt(centers.length)] ^ noise;
+			}
+		} else{
+			int distinct = Math.max(1, size/10);
+			for (int i = 0; i < size; i++)
+				keys[i] = (i < distinct) ? random.nextLong() : keys[random.nextInt(distinct)];
+		}
+		return keys;
+	}
+
+	// Writes raw 256x256 PGM images. Every group of four shares a base
+	// pattern with different noise, so searches have near duplicates to find.
+	private static void writeImages(File dir, int count) throws IOException{
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create directory \""+dir.getPath()+'"');
+		Random random = new Random(seed);
+		int width = (int) Math.sqrt(ImageHashSearch.imgLength);
+		byte[] header = ("P5\n"+width+" "+width+"\n255\n").getBytes("US-ASCII");
+		byte[] pixels = new byte[width*width];
+		double fx = 0, fy = 0, phase = 0;
+		for (int i = 0; i < count; i++){
+			if (i % 4 == 0){
+				fx = random.nextDouble()*0.2;
+				fy = random.nextDouble()*0.2;
+				phase = random.nextDouble()*Math.PI;
+			}
+			for (int y = 0; y < width; y++){
+				for (int x = 0; x < width; x++){
+					double value = 128 + 100*Math.sin(fx*x + fy*y + phase) + random.nextGaussian()*8;
+					pixels[y*width+x] = (byte) Math.max(0, Math.min(255, (int) value));
+				}
+			}
+			try(OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, String.format("synthetic%07d.pgm", i))))){
+				out.write(header);
+				out.write(pixels);
+			}
+			System.out.print("\033[2K	Writing image "+(i+1)+" of "+count+'\r');
+		}
+		System.out.println("\033[2K"+count+" images written to "+dir.getPath()+".");
+	}
+}
@@ -0,0 +1,27 @@
+// Cheap difference hash. The image is shrunk to a grid with one
+// more column than the hash is wide, then each cell brighter than
+// its right neighbour sets its bit.
+
+import java.util.*;
+
+public class DifferenceHasher implements Hasher{
+	final static String name = "difference";
+
+	public String getName(){
+		return name;
+	}
+
+	public void hash(double[] image, int hashLength, BitSet hash) throws IllegalArgumentException{
+		if (hashLength < 4 || !Perceptual.isSquare(hashLength))
+			throw new IllegalArgumentException("Invalid hash length.");
+		int side = (int) Math.sqrt(hashLength);
+		double[] cells = AverageHasher.shrink(image, side, side+1);
+
+		for (int r = 0; r < side; r++){
+			for (int c = 0; c < side; c++){
+				if (cells[r*(side+1)+c] > cells[r*(side+1)+c+1])
+					hash.set(r*side+c);
+			}
+		}
+	}
+}
@@ -48,10 +48,83 @@ public final class FastDctFft {
 			real[halfLen] = vector[len - 1];
 		Arrays.fill(vector, 0.0);
 		Fft.transform(real, vector);
-		for (int i = 0; i < len; i++) {
-			double temp = i * Math.PI / (len * 2);
-			vector[i] = real[i] * Math.cos(temp) + vector[i] * Math.sin(temp);
+		Rotations rotations = rotations(len);
+		for (int i = 0; i < len; i++)
+			vector[i] = real[i] * rotations.cos[i] + vector[i] * rotations.sin[i];
+	}
+	
+	
+	/**
+	 * Computes the unscaled DCT type II on the specified array in place, in single precision.
+	 * The array length must be a power of 2 or zero. Results may differ from the double
+	 * version in the last bits, which is fine for hashing but not for exact work.
+	 * @param vector the vector of numbers to transform
+	 * @throws NullPointerException if the array is {@code null}
+	 */
+	public static void transform(float[] vector) {
+		Objects.requireNonNull(vector);
+		int len = vector.length;
+		if (len == 0)
+			return;
+		int halfLen = len / 2;
+		float[] real = new float[len];
+		for (int i = 0; i < halfLen; i++) {
+			real[i] = vector[i * 2];
+			real[len - 1 - i] = vector[i * 2 + 1];
+		}
+		if (len % 2 == 1)
+			real[halfLen] = vector[len - 1];
+		Arrays.fill(vector, 0.0f);
+		Fft.transformRadix2(real, vector);
+		float[][] rotations = rotations(len).floats();
+		float[] cos = rotations[0];
+		float[] sin = rotations[1];
+		for (int i = 0; i < len; i++)
+			vector[i] = real[i] * cos[i] + vector[i] * sin[i];
+	}
+	
+	
+	/* 
+	 * Cosines and sines of i * pi / (len * 2) used after the FFT. They only depend
+	 * on the length, so the last ones are kept instead of being computed every call.
+	 */
+	private static final class Rotations {
+		final int len;
+		final double[] cos;
+		final double[] sin;
+		// Single precision copies, only made once the float path needs them
+		private volatile float[][] floatTables = null;
+		
+		Rotations(int len) {
+			this.len = len;
+			cos = new double[len];
+			sin = new double[len];
+			for (int i = 0; i < len; i++) {
+				double temp = i * Math.PI / (len * 2);
+				cos[i] = Math.cos(temp);
+				sin[i] = Math.sin(temp);
+			}
+		}
+		
+		float[][] floats() {
+			float[][] result = floatTables;
+			if (result == null) {
+				result = new float[][]{Fft.toFloat(cos), Fft.toFloat(sin)};
+				floatTables = result;
+			}
+			return result;
+		}
+	}
+	
+	private static volatile Rotations lastRotations = null;
+	
+	private static Rotations rotations(int len) {
+		Rotations result = lastRotations;
+		if (result == null || result.len != len) {
+			result = new Rotations(len);
+			lastRotations = result;
 		}
+		return result;
 	}
 	
 	
@@ -64,12 +64,9 @@ public final class Fft {
 			throw new IllegalArgumentException("Length is not a power of 2");
 		
 		// Trigonometric tables
-		double[] cosTable = new double[n / 2];
-		double[] sinTable = new double[n / 2];
-		for (int i = 0; i < n / 2; i++) {
-			cosTable[i] = Math.cos(2 * Math.PI * i / n);
-			sinTable[i] = Math.sin(2 * Math.PI * i / n);
-		}
+		Twiddles twiddles = twiddles(n);
+		double[] cosTable = twiddles.cos;
+		double[] sinTable = twiddles.sin;
 		
 		// Bit-reversed addressing permutation
 		for (int i = 0; i < n; i++) {
@@ -87,9 +84,9 @@ public final class Fft {
 		// Cooley-Tukey decimation-in-time radix-2 FFT
 		for (int size = 2; size <= n; size *= 2) {
 			int halfsize = size / 2;
-			int tablestep = n / size;
+			int stage = halfsize - 1;  // Start of this size's factors in the tables
 			for (int i = 0; i < n; i += size) {
-				for (int j = i, k = 0; j < i + halfsize; j++, k += tablestep) {
+				for (int j = i, k = stage; j < i + halfsize; j++, k++) {
 					int l = j + halfsize;
 					double tpre =  real[l] * cosTable[k] + imag[l] * sinTable[k];
 					double tpim = -real[l] * sinTable[k] + imag[l] * cosTable[k];
@@ -105,6 +102,117 @@ public final class Fft {
 	}
 	
 	
+	/* 
+	 * Computes the discrete Fourier transform (DFT) of the given complex vector in single precision, storing the result
+	 * back into the vector. The vector's length must be a power of 2. Same algorithm as the double version, but twice
+	 * as many values fit in each SIMD register when the JIT vectorizes the butterflies.
+	 */
+	public static void transformRadix2(float[] real, float[] imag) {
+		// Length variables
+		int n = real.length;
+		if (n != imag.length)
+			throw new IllegalArgumentException("Mismatched lengths");
+		int levels = 31 - Integer.numberOfLeadingZeros(n);  // Equal to floor(log2(n))
+		if (1 << levels != n)
+			throw new IllegalArgumentException("Length is not a power of 2");
+		
+		// Trigonometric tables
+		float[][] floatTables = twiddles(n).floats();
+		float[] cosTable = floatTables[0];
+		float[] sinTable = floatTables[1];
+		
+		// Bit-reversed addressing permutation
+		for (int i = 0; i < n; i++) {
+			int j = Integer.reverse(i) >>> (32 - levels);
+			if (j > i) {
+				float temp = real[i];
+				real[i] = real[j];
+				real[j] = temp;
+				temp = imag[i];
+				imag[i] = imag[j];
+				imag[j] = temp;
+			}
+		}
+		
+		// Cooley-Tukey decimation-in-time radix-2 FFT
+		for (int size = 2; size <= n; size *= 2) {
+			int halfsize = size / 2;
+			int stage = halfsize - 1;
+			for (int i = 0; i < n; i += size) {
+				for (int j = i, k = stage; j < i + halfsize; j++, k++) {
+					int l = j + halfsize;
+					float tpre =  real[l] * cosTable[k] + imag[l] * sinTable[k];
+					float tpim = -real[l] * sinTable[k] + imag[l] * cosTable[k];
+					real[l] = real[j] - tpre;
+					imag[l] = imag[j] - tpim;
+					real[j] += tpre;
+					imag[j] += tpim;
+				}
+			}
+			if (size == n)  // Prevent overflow in 'size *= 2'
+				break;
+		}
+	}
+	
+	
+	/* 
+	 * Trigonometric tables for the radix-2 FFT of one length. Factors are laid out stage by stage so every
+	 * butterfly loop reads them contiguously instead of with a stride; the stage of half size h starts at
+	 * index h - 1. Values are computed exactly like the original strided table, so results don't change.
+	 */
+	private static final class Twiddles {
+		final int n;
+		final double[] cos;
+		final double[] sin;
+		// Single precision copies, only made once the float path needs them
+		private volatile float[][] floatTables = null;
+		
+		Twiddles(int n) {
+			this.n = n;
+			cos = new double[Math.max(n - 1, 0)];
+			sin = new double[cos.length];
+			for (int halfsize = 1; halfsize < n; halfsize *= 2) {
+				int tablestep = n / (halfsize * 2);
+				for (int k = 0; k < halfsize; k++) {
+					int i = k * tablestep;
+					cos[halfsize - 1 + k] = Math.cos(2 * Math.PI * i / n);
+					sin[halfsize - 1 + k] = Math.sin(2 * Math.PI * i / n);
+				}
+			}
+		}
+		
+		// Racing threads may both build them, which is harmless
+		float[][] floats() {
+			float[][] result = floatTables;
+			if (result == null) {
+				result = new float[][]{toFloat(cos), toFloat(sin)};
+				floatTables = result;
+			}
+			return result;
+		}
+	}
+	
+	
+	static float[] toFloat(double[] table) {
+		float[] result = new float[table.length];
+		for (int i = 0; i < table.length; i++)
+			result[i] = (float)table[i];
+		return result;
+	}
+	
+	// Tables only depend on the length, so the last ones are kept for the next call
+	private static volatile Twiddles lastTwiddles = null;
+	
+	private static Twiddles twiddles(int n) {
+		Twiddles result = lastTwiddles;
+		if (result == null || result.n != n) {
+			result = new Twiddles(n);
+			lastTwiddles = result;
+		}
+		return result;
+	}
+	
+	
 	/* 
 	 * Computes the discrete Fourier transform (DFT) of the given complex vector, storing the result back into the vector.
 	 * The vector can have any length. This requires the convolution function, which in turn requires the radix-2 FFT function.
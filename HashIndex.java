@@ -0,0 +1,20 @@
+// What the search code needs from an index of hashes, so it can
+// work on a Capillary built in memory or on a MappedCapillary.
+
+import java.util.*;
+
+public interface HashIndex<V>{
+	int getSize();
+
+	// Refuses keys that were not made the same way as the index
+	void checkKey(String name) throws IllegalArgumentException;
+
+	// Values with keys within bitwise tolerance of the hash
+	List<V> search(BitSet hash, int tolerance);
+
+	// Same, sorted by distance, with the distances put in the list
+	List<V> searchByDistance(BitSet hash, int tolerance, List<Integer> distances);
+
+	// Same, stopping at the budget with the closest matches found so far
+	Capillary.SearchResult<V> search(BitSet hash, int tolerance, int maxVisits, long maxNanos);
+}
@@ -0,0 +1,23 @@
+// Turns a parsed image into a hash. The index remembers the name
+// of the hasher that built it, since hashes from different hashers
+// can't be compared. Implementations may modify the image array.
+
+import java.util.*;
+
+public interface Hasher{
+	// Name recorded in the index, must be unique to the algorithm
+	String getName();
+
+	void hash(double[] image, int hashLength, BitSet hash) throws IllegalArgumentException;
+
+	// Returns the built in hasher with that name
+	static Hasher byName(String name) throws IllegalArgumentException{
+		switch (name){
+			case PerceptualHasher.name: return new PerceptualHasher();
+			case PerceptualHasher.floatName: return new PerceptualHasher(true);
+			case AverageHasher.name: return new AverageHasher();
+			case DifferenceHasher.name: return new DifferenceHasher();
+			default: throw new IllegalArgumentException("Unknown hasher "+name);
+		}
+	}
+}
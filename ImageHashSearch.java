@@ -2,35 +2,151 @@
 // Logs timing in CSV files in the folder the program is run from.
 
 import java.io.*;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 
 public class ImageHashSearch{
 	//Set constants for program.
 	final static int hashLength = 64;
 	final static int imgLength = 65536;
+	final static int cachedResults = 1024;
+	final static int cachedHashes = 16384;
+	// Searches stop after this long and show what they found so far
+	final static long searchBudget = 200000000;
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		// Options can come in any order
+		String hasherName = null;
+		File indexFile = null;
+		File saveFile = null;
+		String[] batchArgs = null;
+		int arg = 0;
+		while (arg < args.length){
+			if (args[arg].equals("-hasher") && arg+1 < args.length){
+				// A cheaper hash than the DCT can be used
+				hasherName = args[arg+1];
+				arg += 2;
+			} else if (args[arg].equals("-index") && arg+1 < args.length){
+				// Search a saved index instead of building one from imgdb
+				indexFile = new File(args[arg+1]);
+				arg += 2;
+			} else if (args[arg].equals("-save") && arg+1 < args.length){
+				// Save the index built from imgdb for later use
+				saveFile = new File(args[arg+1]);
+				arg += 2;
+			} else if (args[arg].equals("-batch") && arg+3 < args.length){
+				// Queries are read from a directory or manifest instead of the user
+				batchArgs = Arrays.copyOfRange(args, arg+1, arg+4);
+				arg += 4;
+			} else{
+				usage();
+				return;
+			}
+		}
+		// A saved index is not built here, so there is nothing to save
+		if (indexFile != null && saveFile != null){
+			usage();
+			return;
+		}
+		int batchTolerance = -1;
+		if (batchArgs != null){
+			try{
+				batchTolerance = Integer.parseInt(batchArgs[1]);
+			} catch(NumberFormatException e){}
+			if (batchTolerance < 0 || batchTolerance > 100){
+				usage();
+				return;
+			}
+		}
+
+		// A saved index is mapped as is, it says which hasher built it
+		MappedCapillary mapped = null;
+		if (indexFile != null){
+			mapped = MappedCapillary.open(indexFile);
+			if (hasherName == null)
+				hasherName = mapped.getKeyName();
+		}
+		Hasher hasher = new PerceptualHasher();
+		try{
+			if (hasherName != null)
+				hasher = Hasher.byName(hasherName);
+		} catch(IllegalArgumentException e){
+			System.out.println(e.getMessage()+". Use "+PerceptualHasher.name+", "+PerceptualHasher.floatName+", "+
+								AverageHasher.name+" or "+DifferenceHasher.name+".");
+			return;
+		}
+
+		// Queries must be hashed like the saved index was
+		if (mapped != null){
+			try{
+				mapped.checkKey(hasher.getName());
+			} catch(IllegalArgumentException e){
+				System.out.println(e.getMessage());
+				return;
+			}
+			if (mapped.getHeight() != hashLength){
+				System.out.println("Index keys are "+mapped.getHeight()+" bits, not "+hashLength+".");
+				return;
+			}
+		}
 
-	public static void main(String[] args) throws IOException{
 		// Main program contains the database as well as the 
 		// input scanner for user choices
-		File imgdb = new File("./imgdb");
-		List<File> images = pgmFiles(imgdb);
-		Capillary<File> database = new Capillary<File>(hashLength);
-
+		HashIndex<File> database;
 		try(Scanner input = new Scanner(System.in)){
-			// Prepare the database and time
-			long startTime = System.nanoTime();
-			prepareDB(database,images);
-			long elapsed = System.nanoTime() - startTime;
+			if (mapped != null){
+				database = mapped;
+				System.out.println("Index of "+mapped.getSize()+" images opened from "+indexFile.getPath()+".");
+			} else{
+				File imgdb = new File("./imgdb");
+				List<File> images = pgmFiles(imgdb);
+				// Paths are kept in a compact pool instead of File objects
+				PathPool paths = new PathPool();
+				Capillary<File> built = new Capillary<File>(hashLength, paths, hasher.getName());
 
-			// The timing here will include parsing, hashing and insertion
-			System.out.println("\033[2KDatabase of "+images.size()+" images prepared in "+elapsed+" ns.");
+				// Prepare the database and time
+				long startTime = System.nanoTime();
+				prepareDB(built,images,hasher);
+				built.pack();
+				long elapsed = System.nanoTime() - startTime;
+
+				// The timing here will include parsing, hashing and insertion
+				System.out.println("\033[2KDatabase of "+images.size()+" images prepared with "+hasher.getName()+
+									" hashes in "+elapsed+" ns.");
+				// Measuring the heap here would mostly count the hasher tables,
+				// CapillaryBenchmark measures it on a tree alone
+				if (built.getSize() > 0){
+					long estimate = built.heapBytes() + paths.heapBytes();
+					System.out.println("Heap per image: "+estimate/built.getSize()+" bytes estimated.");
+				}
+				if (saveFile != null){
+					built.save(saveFile);
+					System.out.println("Index saved to "+saveFile.getPath()+".");
+				}
+				database = built;
+			}
 
 			// Call the search method
-			imageSearch(database,input);
+			if (batchArgs != null){
+				BatchSearch batchSearch = new BatchSearch(database, hasher, (batchTolerance*hashLength)/100,
+															Runtime.getRuntime().availableProcessors());
+				try{
+					batchSearch.run(new File(batchArgs[0]), new File(batchArgs[2]));
+				} catch(IllegalArgumentException e){
+					System.out.println(e.getMessage());
+				}
+			} else
+				imageSearch(database,hasher,input);
 		}
-	}	
+	}
+
+	private static void usage(){
+		System.out.println("Usage: ImageHashSearch [-hasher <name>] [-index <saved index> | -save <index file>]\n"+
+							"                       [-batch <directory or manifest> <tolerance %> <output file>]");
+	}
 
-	private static void prepareDB(Capillary<File> database, List<File> images) throws IOException{
+	private static void prepareDB(Capillary<File> database, List<File> images, Hasher hasher) throws IOException{
 		// Prepare timing file
 		try(BufferedWriter InsertionTiming = new BufferedWriter(new FileWriter("InsertionTiming.csv"))){
 			InsertionTiming.append("Insertion Time,Hash length = "+hashLength+",Image size = "+imgLength+",Number of images = "+images.size());
@@ -47,7 +163,7 @@ public class ImageHashSearch{
 					
 					// Parse then hash
 					double[] parsedImg = parsePGM(imgStrm);
-					Perceptual.Hash(parsedImg, hashLength, hash);
+					hasher.hash(parsedImg, hashLength, hash);
 			
 					// Insert and time
 					long startTime = System.nanoTime();
@@ -73,7 +189,7 @@ public class ImageHashSearch{
 	}
 
 	// Returns a list with all files that have the proper extension in the folder
-	private static List<File> pgmFiles(File dir) {
+	static List<File> pgmFiles(File dir) {
 		List<File> pgmFiles = new ArrayList<File>();
 		for (File file : dir.listFiles()) {
 			if (file.getName().endsWith(".pgm")) {
@@ -83,6 +199,27 @@ public class ImageHashSearch{
 		return pgmFiles;
 	}
 
+	// Parses and hashes the whole content of a PGM file
+	static BitSet hashImage(byte[] content, Hasher hasher) throws IllegalArgumentException, IOException{
+		return hashImage(content, hasher, new long[2]);
+	}
+
+	// Same, also giving the parse and hash times in ns in times
+	static BitSet hashImage(byte[] content, Hasher hasher, long[] times) throws IllegalArgumentException, IOException{
+		BufferedInputStream imgStrm = new BufferedInputStream(new ByteArrayInputStream(content));
+   		if (imgStrm.read() != 80 || imgStrm.read() != 53) //Should get "P5" as first 2 reads
+			throw new IllegalArgumentException("File is NOT raw PGM format.");
+		long startTime = System.nanoTime();
+		double[] parsed = parsePGM(imgStrm);
+		times[0] = System.nanoTime() - startTime;
+
+		BitSet hash = new BitSet(hashLength);
+		startTime = System.nanoTime();
+		hasher.hash(parsed, hashLength, hash);
+		times[1] = System.nanoTime() - startTime;
+		return hash;
+	}
+
 	private static double[] parsePGM(BufferedInputStream imgStrm) throws IllegalArgumentException, IOException{
 		imgStrm.mark(1); //We remember this place
    		while(imgStrm.read() == 10){ // If we got a newline
@@ -150,7 +287,10 @@ public class ImageHashSearch{
 		return parsed;
 	}
 
-	private static void imageSearch(Capillary<File> database, Scanner input) throws IOException{
+	private static void imageSearch(HashIndex<File> database, Hasher hasher, Scanner input) throws IOException{
+		// Queries must be hashed like the database was
+		database.checkKey(hasher.getName());
+		QueryCache<File> cache = new QueryCache<File>(database, cachedResults, cachedHashes);
 		// Overwrite or create a file to store timing data
 		try(BufferedWriter SearchTiming = new BufferedWriter(new FileWriter("SearchTiming.csv"))){
 			SearchTiming.append("Hashing Time,Searching Time,Tolerance,Hits,Hash length = "+hashLength+
@@ -161,8 +301,11 @@ public class ImageHashSearch{
 			while(true){
 				System.out.println("Input path of the image or directory to search for or 'quit':");
 				String comparePath = input.nextLine();
-				if (comparePath.toLowerCase().equals("quit"))
+				if (comparePath.toLowerCase().equals("quit")){
+					System.out.println("Result cache: "+cache.getResultHits()+" hits, "+cache.getResultMisses()+" misses. "+
+										"Hash cache: "+cache.getHashHits()+" hits, "+cache.getHashMisses()+" misses.");
 					return;
+				}
 				File toCompare = new File(comparePath);
 
 				// If path is a directory
@@ -175,14 +318,11 @@ public class ImageHashSearch{
 						System.out.println("This directory contains "+images.size()+" PGM images.");
 						int tolerance = getTolerance(input);
 						// Then attempt to find a match for each in the database
-						for(File img : images){
-							matchImages(database, img, tolerance, input, SearchTiming);
-							System.out.print('\n');
-						}
+						matchDirectory(cache, hasher, images, tolerance, SearchTiming);
 					}
 				}// Otherwise call the match for the single file
 				else
-					matchImages(database, toCompare, -1, input, SearchTiming);
+					matchImages(cache, hasher, toCompare, -1, input, SearchTiming);
 			}
 		}
 	}
@@ -205,68 +345,142 @@ public class ImageHashSearch{
 		return tolerance;
 	}
 
-	private static void matchImages(Capillary<File> database, File img, int tolerance, Scanner input,
-									BufferedWriter SearchTiming) throws IOException{
-		BitSet hashCompare = new BitSet(hashLength);
-		double[] parsedCompare = new double[imgLength];
-		boolean fileHashed = false;
-		// First, we check if we can parse the file
-		try (BufferedInputStream imgStrm = new BufferedInputStream(new FileInputStream(img))){
-			System.out.print("	Parsing "+img.getName()+'\r');
-	   		if (imgStrm.read() != 80 || imgStrm.read() != 53) //Should get "P5" as first 2 reads
-				throw new IllegalArgumentException("File is NOT raw PGM format.");
-			//and time the amount it took
-			long startTime = System.nanoTime();
-			parsedCompare = parsePGM(imgStrm);
-			long elapsed = System.nanoTime() - startTime;
-			System.out.println("\033[2KParsed "+img.getName()+" in "+elapsed+" ns.");
-
-			// Once its parse, we hash it and time that
-			System.out.print("	Hashing "+img.getName()+'\r');
-			startTime = System.nanoTime();
-			Perceptual.Hash(parsedCompare, hashLength, hashCompare);
-			elapsed = System.nanoTime() - startTime;
-
-			// Then we write the timing to file and flag the file as hashed
-			SearchTiming.append(Long.toString(elapsed)+',');
-			System.out.println("\033[2KHashed "+img.getName()+" in "+elapsed+" ns.");
-			fileHashed = true;
-			// If a known exception occurs, we warn the user, but keep running
-		} catch(FileNotFoundException e) {
-			System.out.println(e.toString() + " Unable to find file \"" + img.getName() + '"');
+	// Hex digest of a file content, used to recognize files already hashed
+	private static String digest(byte[] content){
+		try{
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(content))
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e){
+			// Every JVM must support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// What a worker found out about a query image, for the main thread to print
+	private static class Prepared{
+		File img;
+		BitSet hash = null;
+		long parseTime = -1; // Stays -1 if the hash was found in cache
+		long hashTime = 0;
+		String error = null;
+	}
+
+	// Reads, parses and hashes a query image. This does not print anything,
+	// so it can run on a worker while the main thread prints other results.
+	private static Prepared prepare(QueryCache<File> cache, Hasher hasher, File img){
+		Prepared query = new Prepared();
+		query.img = img;
+		// First, we read the file and check if we already know its hash
+		try{
+			byte[] content = Files.readAllBytes(img.toPath());
+			String digest = digest(content);
+			query.hash = cache.hash(digest);
+			if (query.hash == null){
+				// Otherwise, we parse and hash it and time both
+				long[] times = new long[2];
+				BitSet hashCompare = hashImage(content, hasher, times);
+				query.parseTime = times[0];
+				query.hashTime = times[1];
+				cache.putHash(digest, hashCompare);
+				query.hash = hashCompare;
+			}
+			// If a known exception occurs, we keep it to warn the user
+		} catch(NoSuchFileException e) {
+			query.error = e.toString() + " Unable to find file \"" + img.getName() + '"';
 		} catch(SecurityException e){
-			System.out.println(e.toString() + " No access to file \"" + img.getName() + '"');
+			query.error = e.toString() + " No access to file \"" + img.getName() + '"';
 		} catch(IOException e){
-			System.out.println(e.toString() + " Unable to read file \"" + img.getName() + '"');
+			query.error = e.toString() + " Unable to read file \"" + img.getName() + '"';
 		} catch(IllegalArgumentException e){
-			System.out.println(e.getMessage() + img.getName());
+			query.error = e.getMessage() + img.getName();
+		}
+		return query;
+	}
+
+	// Prints how a query was prepared. Returns true if it has a hash to search.
+	private static boolean report(Prepared query, BufferedWriter SearchTiming) throws IOException{
+		if (query.hash == null){
+			System.out.println(query.error);
+			return false;
+		}
+		if (query.parseTime < 0)
+			System.out.println("Hash of "+query.img.getName()+" found in cache.");
+		else{
+			System.out.println("Parsed "+query.img.getName()+" in "+query.parseTime+" ns.");
+			System.out.println("Hashed "+query.img.getName()+" in "+query.hashTime+" ns.");
 		}
+		// Then we write the timing to file
+		SearchTiming.append(Long.toString(query.hashTime)+',');
+		return true;
+	}
+
+	private static void matchImages(QueryCache<File> cache, Hasher hasher, File img, int tolerance, Scanner input,
+									BufferedWriter SearchTiming) throws IOException{
+		System.out.print("	Hashing "+img.getName()+'\r');
+		Prepared query = prepare(cache, hasher, img);
+		System.out.print("\033[2K");
 
 		// If the file was hashed and parsed successfully
-		if(fileHashed){
+		if(report(query, SearchTiming)){
 			// We ask the user to set the tolerance, if necessary
 			if(tolerance < 0)
 				tolerance = getTolerance(input);
-			// Then we search and time that
-			long startTime = System.nanoTime();
-			List<File> matches = database.search(hashCompare,((tolerance*hashLength)/100));
-			long elapsed = System.nanoTime() - startTime;
-
-			// And we output the names of the matches, if any
-			if (matches.isEmpty())
-				System.out.println("No matches in the database.");
-			else{
-				Collections.<File>sort(matches);
-				System.out.println("Matches with tolerance "+tolerance+"% are:");
-				for (File match : matches){
-					System.out.println(match.getName());
-				}
+			searchAndPrint(cache, query.hash, tolerance, SearchTiming);
+		}
+	}
+
+	// Images of a directory are read, parsed and hashed by a pool of workers
+	// a few files ahead, while the main thread searches and prints. Results
+	// are printed by file name, whatever order the workers finish in.
+	private static void matchDirectory(final QueryCache<File> cache, final Hasher hasher, List<File> images, int tolerance,
+										BufferedWriter SearchTiming) throws IOException{
+		Collections.<File>sort(images);
+		int workers = Runtime.getRuntime().availableProcessors();
+		long startTime = System.nanoTime();
+		try(ReadAhead<File, Prepared> ahead = new ReadAhead<File, Prepared>(images, 0, workers,
+				new ReadAhead.Work<File, Prepared>(){
+					public Prepared run(File img){
+						return prepare(cache, hasher, img);
+					}
+				})){
+			// Search and print each image in turn
+			while (ahead.hasNext()){
+				Prepared query = ahead.next();
+				if (report(query, SearchTiming))
+					searchAndPrint(cache, query.hash, tolerance, SearchTiming);
+				System.out.print('\n');
 			}
+		}
+		System.out.println(images.size()+" images searched in "+(System.nanoTime() - startTime)+" ns.");
+	}
 
-			// Then we display and write the timings
-			System.out.println("Search took "+elapsed+" ns.");
-			SearchTiming.append(Long.toString(elapsed)+','+Integer.toString(tolerance)+','+Integer.toString(matches.size()));
-			SearchTiming.newLine();
+	private static void searchAndPrint(QueryCache<File> cache, BitSet hashCompare, int tolerance,
+										BufferedWriter SearchTiming) throws IOException{
+		// Then we search and time that
+		long startTime = System.nanoTime();
+		Capillary.SearchResult<File> found = cache.search(hashCompare,((tolerance*hashLength)/100),
+															Integer.MAX_VALUE, searchBudget);
+		long elapsed = System.nanoTime() - startTime;
+		List<File> matches = found.getMatches();
+
+		// And we output the names of the matches, if any
+		if (matches.isEmpty())
+			System.out.println("No matches in the database.");
+		else{
+			Collections.<File>sort(matches);
+			System.out.println("Matches with tolerance "+tolerance+"% are:");
+			for (File match : matches){
+				System.out.println(match.getName());
+			}
 		}
+
+		// Then we display and write the timings
+		if (!found.isComplete())
+			System.out.println("Search ran out of time, closest matches only.");
+		System.out.println("Search took "+elapsed+" ns.");
+		SearchTiming.append(Long.toString(elapsed)+','+Integer.toString(tolerance)+','+Integer.toString(matches.size()));
+		SearchTiming.newLine();
 	}
 }
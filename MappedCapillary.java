@@ -0,0 +1,331 @@
+// Read only Capillary searched straight from a file saved by
+// Capillary.save. The file is memory mapped, so opening it is
+// instant, nothing is loaded on the heap, and several programs
+// searching the same index share the pages of the file.
+//
+// The file holds a header, then the nodes depth first, each with
+// its rapids and the AND and OR summaries of its keys as longs.
+// Then come the buckets of value ids, where each path starts and
+// finally the paths. Keys can't be longer than 64 bits. Since a
+// single mapping is limited to 2 GB, so is the file.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class MappedCapillary implements HashIndex<File>{
+	final static int magic = 0x43415049; // "CAPI"
+	final static int version = 1;
+	final static int headerLength = 64;
+	final static int nodeLength = 40;
+	final static int branch = 0;
+	final static int leaf = 1;
+
+	ByteBuffer buffer;
+	int height;
+	int size;
+	int nodeCount;
+	long nodesOffset;
+	long idsOffset;
+	long pathIndexOffset;
+	String keyName;
+	boolean pruning = true;
+
+	private MappedCapillary(ByteBuffer mapped) throws IOException{
+		buffer = mapped;
+		if (buffer.getInt(0) != magic || buffer.getInt(4) != version)
+			throw new IOException("Not a saved Capillary.");
+		height = buffer.getInt(8);
+		size = buffer.getInt(12);
+		nodeCount = buffer.getInt(16);
+		nodesOffset = buffer.getLong(24);
+		idsOffset = buffer.getLong(32);
+		pathIndexOffset = buffer.getLong(40);
+		byte[] name = new byte[buffer.getInt(60)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(headerLength);
+		view.get(name);
+		keyName = (name.length == 0) ? null : new String(name, StandardCharsets.UTF_8);
+	}
+
+	public static MappedCapillary open(File file) throws IOException{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Index is too large to map.");
+			// The mapping stays valid once the channel is closed
+			return new MappedCapillary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	public int getSize(){
+		return size;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	public String getKeyName(){
+		return keyName;
+	}
+
+	public void checkKey(String name) throws IllegalArgumentException{
+		if (keyName != null && !keyName.equals(name))
+			throw new IllegalArgumentException("Database keys were made by "+keyName+", not "+name+".");
+	}
+
+	// Pruning can be turned off to measure what it saves
+	public void setPruning(boolean prune){
+		pruning = prune;
+	}
+
+	public boolean isEmpty(){
+		return nodeCount == 0;
+	}
+
+	public List<File> values(){
+		return search(new BitSet(), height);
+	}
+
+	public List<File> search(BitSet hash, int tolerance){
+		Hits hits = new Hits(-1);
+		// A negative tolerance matches nothing
+		if (!isEmpty() && tolerance >= 0)
+			navigate(keyOf(hash), 0, height, tolerance, hits);
+		List<File> matches = new ArrayList<File>(hits.size);
+		for (int i = 0; i < hits.size; i++)
+			matches.add(get(hits.ids[i]));
+		return matches;
+	}
+
+	public List<File> searchByDistance(BitSet hash, int tolerance, List<Integer> distances){
+		if (tolerance < 0)
+			return new ArrayList<File>();
+		Hits hits = new Hits(tolerance);
+		if (!isEmpty())
+			navigate(keyOf(hash), 0, height, tolerance, hits);
+		int[] sorted = Capillary.byDistance(hits.distances, hits.size, tolerance);
+
+		List<File> matches = new ArrayList<File>(hits.size);
+		for (int i : sorted){
+			matches.add(get(hits.ids[i]));
+			distances.add(hits.distances[i]);
+		}
+		return matches;
+	}
+
+	// Same best first search as Capillary, on the mapped nodes
+	public Capillary.SearchResult<File> search(BitSet hash, int tolerance, int maxVisits, long maxNanos){
+		Hits hits = new Hits(tolerance);
+		int[] visited = {0};
+		boolean complete = isEmpty() || explore(keyOf(hash), tolerance, maxVisits, maxNanos, hits, visited);
+
+		List<File> matches = new ArrayList<File>(hits.size);
+		List<Integer> distances = new ArrayList<Integer>(hits.size);
+		for (int i = 0; i < hits.size; i++){
+			matches.add(get(hits.ids[i]));
+			distances.add(hits.distances[i]);
+		}
+		return new Capillary.SearchResult<File>(matches, distances, complete, visited[0]);
+	}
+
+	// Decodes the path of a value, only done for matches
+	File get(int id){
+		long start = buffer.getLong((int) (pathIndexOffset + 8L*id));
+		long end = buffer.getLong((int) (pathIndexOffset + 8L*(id+1)));
+		byte[] path = new byte[(int) (end - start)];
+		ByteBuffer view = buffer.duplicate();
+		view.position((int) start);
+		view.get(path);
+		return new File(new String(path, StandardCharsets.UTF_8));
+	}
+
+	private long keyOf(BitSet hash){
+		long[] words = hash.toLongArray();
+		return (words.length == 0) ? 0 : words[0] & mask(height);
+	}
+
+	// Mask of the lowest bits bits
+	private static long mask(int bits){
+		return (bits == 64) ? -1L : (1L << bits) - 1;
+	}
+
+	// Field of a node
+	private long rapids(int node){
+		return buffer.getLong((int) (nodesOffset + (long) nodeLength*node));
+	}
+
+	private long and(int node){
+		return buffer.getLong((int) (nodesOffset + (long) nodeLength*node + 8));
+	}
+
+	private long or(int node){
+		return buffer.getLong((int) (nodesOffset + (long) nodeLength*node + 16));
+	}
+
+	private int rLength(int node){
+		return buffer.getInt((int) (nodesOffset + (long) nodeLength*node + 24));
+	}
+
+	private int kind(int node){
+		return buffer.getInt((int) (nodesOffset + (long) nodeLength*node + 28));
+	}
+
+	// Nodes above the bottom must be branches and those at the bottom leaves,
+	// anything else means the file is corrupt and would be read as garbage
+	private void expect(int node, int cHeight){
+		if (kind(node) != ((cHeight == 0) ? leaf : branch))
+			throw new IllegalStateException("Corrupt index, node "+node+" is not a "+((cHeight == 0) ? "leaf." : "branch."));
+	}
+
+	// Right child of a branch, or first id of a leaf
+	private int first(int node){
+		return buffer.getInt((int) (nodesOffset + (long) nodeLength*node + 32));
+	}
+
+	// Left child of a branch, or id count of a leaf
+	private int second(int node){
+		return buffer.getInt((int) (nodesOffset + (long) nodeLength*node + 36));
+	}
+
+	// Growable list of the ids of the matches, with their
+	// distances if a tolerance is given
+	private class Hits{
+		int[] ids = new int[16];
+		int[] distances = new int[16];
+		int tolerance;
+		int size = 0;
+
+		Hits(int tol){
+			tolerance = tol;
+		}
+
+		void add(int node, int tolkens){
+			int first = first(node);
+			int count = second(node);
+			if (size + count > ids.length){
+				ids = Arrays.copyOf(ids, Math.max(ids.length*2, size + count));
+				distances = Arrays.copyOf(distances, ids.length);
+			}
+			for (int i = 0; i < count; i++){
+				ids[size] = buffer.getInt((int) (idsOffset + 4L*(first+i)));
+				distances[size++] = tolerance - tolkens;
+			}
+		}
+	}
+
+	// Same summary check as Capillary: bits where every key below
+	// disagrees with the map each cost a tolken whatever the path
+	private boolean hopeless(long key, int node, int cHeight, int cTolkens){
+		if (!pruning || cTolkens >= cHeight) return false;
+		long below = mask(cHeight);
+		long ones = key & ~or(node) & below;
+		long zeros = and(node) & ~key & below;
+		return Long.bitCount(ones) + Long.bitCount(zeros) > cTolkens;
+	}
+
+	private void navigate(long key, int start, int drop, int tolkens, Hits matches){
+		int cNode = start;
+		int cHeight = drop;
+		int cTolkens = tolkens;
+
+		while (true){
+			// Every difference with the rapids reduces our tolkens
+			int rLength = rLength(cNode);
+			if (rLength > 0){
+				long part = (key >>> (cHeight-rLength)) & mask(rLength);
+				cTolkens -= Long.bitCount(part ^ rapids(cNode));
+				if (cTolkens < 0) return;
+				cHeight -= rLength;
+			}
+			expect(cNode, cHeight);
+			// At leaf level, we store the whole bucket
+			if (cHeight == 0){
+				matches.add(cNode, cTolkens);
+				return;
+			}
+			if (hopeless(key, cNode, cHeight, cTolkens)) return;
+			// Otherwise we go where the key says and try the other side if we can
+			cHeight--;
+			if (((key >>> cHeight) & 1) != 0){
+				if (cTolkens > 0)
+					navigate(key, second(cNode), cHeight, cTolkens-1, matches);
+				cNode = first(cNode);
+			} else{
+				if (cTolkens > 0)
+					navigate(key, first(cNode), cHeight, cTolkens-1, matches);
+				cNode = second(cNode);
+			}
+		}
+	}
+
+	// Streams of the best first search, holding node numbers
+	private static class NodeStreams extends Streams{
+		int[][] nodes;
+		// Node taken by the last poll
+		int node;
+
+		NodeStreams(int tolerance){
+			super(tolerance);
+			nodes = new int[tolerance+1][];
+		}
+
+		void resize(int t, int length){
+			nodes[t] = (nodes[t] == null) ? new int[length] : Arrays.copyOf(nodes[t], length);
+		}
+
+		void add(int n, int h, int t){
+			// push may grow the stack, so it must run before we index it
+			int slot = push(h, t);
+			nodes[t][slot] = n;
+		}
+
+		void poll(){
+			int last = pop();
+			node = nodes[tolkens][last];
+		}
+	}
+
+	private boolean explore(long key, int tolkens, int maxVisits, long maxNanos, Hits matches, int[] visited){
+		long startTime = System.nanoTime();
+		int polls = 0;
+		NodeStreams streams = new NodeStreams(Math.max(tolkens, 0));
+		enter(key, 0, height, tolkens, streams, visited);
+
+		while (!streams.isEmpty()){
+			if (visited[0] >= maxVisits || ((++polls & 63) == 0 && System.nanoTime() - startTime > maxNanos))
+				return false;
+			streams.poll();
+			if (streams.height == 0){
+				matches.add(streams.node, streams.tolkens);
+				continue;
+			}
+			int cTolkens = streams.tolkens;
+			int cHeight = streams.height-1;
+			boolean goRight = ((key >>> cHeight) & 1) != 0;
+			int right = first(streams.node);
+			int left = second(streams.node);
+			enter(key, goRight ? right : left, cHeight, cTolkens, streams, visited);
+			if (cTolkens > 0)
+				enter(key, goRight ? left : right, cHeight, cTolkens-1, streams, visited);
+		}
+		return true;
+	}
+
+	private void enter(long key, int cNode, int cHeight, int cTolkens, NodeStreams streams, int[] visited){
+		visited[0]++;
+		int rLength = rLength(cNode);
+		if (rLength > 0){
+			long part = (key >>> (cHeight-rLength)) & mask(rLength);
+			cTolkens -= Long.bitCount(part ^ rapids(cNode));
+			cHeight -= rLength;
+		}
+		if (cTolkens < 0) return;
+		expect(cNode, cHeight);
+		if (cHeight > 0 && hopeless(key, cNode, cHeight, cTolkens)) return;
+		streams.add(cNode, cHeight, cTolkens);
+	}
+}
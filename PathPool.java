@@ -0,0 +1,103 @@
+// Compact store for file paths. Paths are front coded: each
+// entry only keeps the bytes that differ from the previous
+// path, since images from the same folder share most of it.
+// Every few entries a full path is stored as a restart point
+// so a single path can be decoded without reading the whole
+// pool. File objects are only rebuilt for returned matches.
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class PathPool implements ValueStore<File>{
+	// Number of entries between two full paths
+	final static int restartInterval = 16;
+
+	byte[] data = new byte[1024];
+	int used = 0;
+	// Offset of every restart entry in the data
+	int[] restarts = new int[16];
+	int size = 0;
+	// Last path added, used to find the shared prefix
+	byte[] last = new byte[0];
+
+	public int add(File value){
+		byte[] path = value.getPath().getBytes(StandardCharsets.UTF_8);
+		int shared = 0;
+		// Restart entries always hold the full path
+		if (size % restartInterval == 0){
+			int block = size / restartInterval;
+			if (block == restarts.length)
+				restarts = Arrays.copyOf(restarts, Math.max(1, block*2));
+			restarts[block] = used;
+		} else{
+			int max = Math.min(path.length, last.length);
+			while (shared < max && path[shared] == last[shared]) shared++;
+		}
+		// Entry is the shared length, the suffix length, then the suffix
+		ensure(10 + path.length - shared);
+		writeVarInt(shared);
+		writeVarInt(path.length - shared);
+		System.arraycopy(path, shared, data, used, path.length - shared);
+		used += path.length - shared;
+		last = path;
+		return size++;
+	}
+
+	public File get(int id){
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("Invalid path id " + id);
+		// Start from the closest restart and rebuild forward
+		int[] pos = {restarts[id / restartInterval]};
+		byte[] path = new byte[0];
+		for (int i = id - id % restartInterval; i <= id; i++){
+			int shared = readVarInt(pos);
+			int suffix = readVarInt(pos);
+			byte[] next = Arrays.copyOf(path, shared + suffix);
+			System.arraycopy(data, pos[0], next, shared, suffix);
+			pos[0] += suffix;
+			path = next;
+		}
+		return new File(new String(path, StandardCharsets.UTF_8));
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public void trim(){
+		data = Arrays.copyOf(data, used);
+		restarts = Arrays.copyOf(restarts, (size + restartInterval - 1) / restartInterval);
+	}
+
+	// Approximate heap used by the pool, in bytes
+	public long heapBytes(){
+		return data.length + 4L*restarts.length + last.length;
+	}
+
+	private void ensure(int extra){
+		if (used + extra > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length*2, used + extra));
+	}
+
+	// Lengths are stored 7 bits at a time so short suffixes take a single byte
+	private void writeVarInt(int value){
+		while ((value & ~0x7F) != 0){
+			data[used++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[used++] = (byte) value;
+	}
+
+	private int readVarInt(int[] pos){
+		int value = 0;
+		int shift = 0;
+		byte readByte;
+		do{
+			readByte = data[pos[0]++];
+			value |= (readByte & 0x7F) << shift;
+			shift += 7;
+		} while (readByte < 0);
+		return value;
+	}
+}
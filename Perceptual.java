@@ -27,6 +27,30 @@ public class Perceptual{
 		compute(windowedDCT, hash);
 	}
 
+	// Same hash computed in single precision, which is not measurably
+	// faster but halves the memory the transform works on. A bit can only
+	// differ from the double version when a coefficient is within float
+	// rounding of the average, so hashes from both shouldn't mix.
+	public static void Hash(float[] image, int hashLength, BitSet hash) throws IllegalArgumentException{
+		int n = image.length;
+		if (hashLength < 4 || !isSquare(hashLength))
+			throw new IllegalArgumentException("Invalid hash length.");
+		else if ( Integer.bitCount(n) != 1 || n < hashLength || !isSquare(n))
+			throw new IllegalArgumentException("Invalid image length.");
+
+		FastDctFft.transform(image);
+
+		// Window straight from the float DCT, then finish as usual
+		int hashWidth = (int) Math.sqrt(hashLength);
+		int DCTwidth = (int) Math.sqrt(n);
+		double[] windowedDCT = new double[hashLength];
+		for (int i = 0; i < hashLength-1;i++)
+			windowedDCT[i] = image[DCTwidth*Math.floorDiv(i+1, hashWidth)+(i+1)%hashWidth];
+		windowedDCT[hashLength-1] = image[hashWidth*DCTwidth+hashWidth];
+
+		compute(windowedDCT, hash);
+	}
+
 	private static void window(double[] imageDCT, int hashLength, double[] windowed){
 		int hashWidth = (int) Math.sqrt(hashLength);
 		int DCTwidth = (int) Math.sqrt(imageDCT.length);
@@ -63,12 +87,16 @@ public class Perceptual{
 	// we'll get a random values and only a few of them are squares. In this case,
 	// we expect a large number of perfect squares and use this to check for input
 	// correctness. I have yet to find a PASS FAST algorithm.
-	static long squareMask = 0; // JVM dependent, but normally 0xC840C04048404040, computed below
+	// Normally 0xC840C04048404040. It is built once when the class loads,
+	// since hashes are computed by several threads at the same time and
+	// a lazily built mask could be seen half done.
+	static final long squareMask = squareMask();
+	private static long squareMask() {
+		long mask = 0;
+		for (int i=0; i<64; ++i) mask |= Long.MIN_VALUE >>> (i*i);
+		return mask;
+	}
 	public static boolean isSquare(long x) {
-		// If squareMask not computed yet, do it now
-		if (squareMask == 0){
-	    	for (int i=0; i<64; ++i) squareMask |= Long.MIN_VALUE >>> (i*i);
-		}
 	    // This tests if the 6 least significant bits are right.
 	    // Moving the to be tested bit to the highest position saves us masking.
 	    if (squareMask << x >= 0) return false;
@@ -0,0 +1,35 @@
+// Precise but costly DCT based hash, see Perceptual. It can
+// run in single precision, which gives slightly different hashes.
+
+import java.util.*;
+
+public class PerceptualHasher implements Hasher{
+	final static String name = "dct";
+	// Single precision hashes matched dct ones on every test image, but
+	// bits can flip where coefficients are within rounding of the average
+	final static String floatName = "dct-float";
+
+	boolean floats;
+
+	public PerceptualHasher(){
+		this(false);
+	}
+
+	public PerceptualHasher(boolean singlePrecision){
+		floats = singlePrecision;
+	}
+
+	public String getName(){
+		return floats ? floatName : name;
+	}
+
+	public void hash(double[] image, int hashLength, BitSet hash) throws IllegalArgumentException{
+		if (floats){
+			float[] floatImage = new float[image.length];
+			for (int i = 0; i < image.length; i++)
+				floatImage[i] = (float) image[i];
+			Perceptual.Hash(floatImage, hashLength, hash);
+		} else
+			Perceptual.Hash(image, hashLength, hash);
+	}
+}
@@ -0,0 +1,186 @@
+// Keeps the results of recent searches in front of an index.
+// Results only grow with the tolerance, so a result cached at
+// some tolerance also answers every lower tolerance: the matches
+// are kept sorted by distance and we only return the closest ones.
+// A second tier remembers the hash of recently seen file contents
+// so the same file does not need to be parsed and hashed again.
+// Each tier has its own lock so workers asking for hashes never wait
+// on a search, and searches run outside the lock: only looking up and
+// storing a result hold it.
+
+import java.util.*;
+
+public class QueryCache<V>{
+	// A cached search, with the distance of every match
+	private static class Result<V>{
+		int tolerance;
+		List<V> matches;
+		List<Integer> distances;
+	}
+
+	HashIndex<V> database;
+	int databaseSize;
+	Map<BitSet, Result<V>> results;
+	Map<String, BitSet> hashes;
+	final Object resultLock = new Object();
+	final Object hashLock = new Object();
+
+	long resultHits = 0;
+	long resultMisses = 0;
+	long hashHits = 0;
+	long hashMisses = 0;
+
+	// Both tiers are LRU and hold at most the given number of entries
+	public QueryCache(HashIndex<V> db, final int maxResults, final int maxHashes){
+		database = db;
+		databaseSize = db.getSize();
+		results = new LinkedHashMap<BitSet, Result<V>>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<BitSet, Result<V>> eldest){
+				return size() > maxResults;
+			}
+		};
+		hashes = new LinkedHashMap<String, BitSet>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, BitSet> eldest){
+				return size() > maxHashes;
+			}
+		};
+	}
+
+	// Same as search on the index, but answered from cache when possible
+	public List<V> search(BitSet hash, int tolerance){
+		int size;
+		synchronized (resultLock){
+			refresh();
+			Result<V> cached = results.get(hash);
+			if (cached != null && cached.tolerance >= tolerance){
+				resultHits++;
+				int end = within(cached, tolerance);
+				return new ArrayList<V>(cached.matches.subList(0, end));
+			}
+			resultMisses++;
+			size = databaseSize;
+		}
+
+		Result<V> result = new Result<V>();
+		result.tolerance = tolerance;
+		result.distances = new ArrayList<Integer>();
+		result.matches = database.searchByDistance(hash, tolerance, result.distances);
+		store(hash, result, size);
+		return new ArrayList<V>(result.matches);
+	}
+
+	// Same as the budgeted search on the index. Only complete
+	// results are cached, partial ones would hide matches.
+	public Capillary.SearchResult<V> search(BitSet hash, int tolerance, int maxVisits, long maxNanos){
+		int size;
+		synchronized (resultLock){
+			refresh();
+			Result<V> cached = results.get(hash);
+			if (cached != null && cached.tolerance >= tolerance){
+				resultHits++;
+				int end = within(cached, tolerance);
+				return new Capillary.SearchResult<V>(new ArrayList<V>(cached.matches.subList(0, end)),
+													new ArrayList<Integer>(cached.distances.subList(0, end)), true, 0);
+			}
+			resultMisses++;
+			size = databaseSize;
+		}
+
+		Capillary.SearchResult<V> found = database.search(hash, tolerance, maxVisits, maxNanos);
+		if (found.isComplete()){
+			Result<V> result = new Result<V>();
+			result.tolerance = tolerance;
+			result.matches = new ArrayList<V>(found.getMatches());
+			result.distances = new ArrayList<Integer>(found.getDistances());
+			store(hash, result, size);
+		}
+		return found;
+	}
+
+	// Returns the hash of a file content digest, or null if unknown
+	public BitSet hash(String digest){
+		synchronized (hashLock){
+			BitSet hash = hashes.get(digest);
+			if (hash == null)
+				hashMisses++;
+			else{
+				hashHits++;
+				hash = (BitSet) hash.clone();
+			}
+			return hash;
+		}
+	}
+
+	public void putHash(String digest, BitSet hash){
+		BitSet copy = (BitSet) hash.clone();
+		synchronized (hashLock){
+			hashes.put(digest, copy);
+		}
+	}
+
+	// Keeps a result found for a database of the given size. Another
+	// thread may have cached a wider one meanwhile, which we keep, and
+	// if the database changed the result is already stale.
+	private void store(BitSet hash, Result<V> result, int size){
+		BitSet key = (BitSet) hash.clone();
+		synchronized (resultLock){
+			refresh();
+			if (databaseSize != size) return;
+			Result<V> cached = results.get(key);
+			if (cached == null || cached.tolerance < result.tolerance)
+				results.put(key, result);
+		}
+	}
+
+	// If the database changed, the results we know are stale.
+	// Must be called holding the result lock.
+	private void refresh(){
+		if (database.getSize() != databaseSize){
+			results.clear();
+			databaseSize = database.getSize();
+		}
+	}
+
+	// Matches are sorted by distance, so those within
+	// tolerance are all before the returned index
+	private int within(Result<V> cached, int tolerance){
+		int end = 0;
+		while (end < cached.distances.size() && cached.distances.get(end) <= tolerance)
+			end++;
+		return end;
+	}
+
+	public void clear(){
+		synchronized (resultLock){
+			results.clear();
+			databaseSize = database.getSize();
+		}
+		synchronized (hashLock){
+			hashes.clear();
+		}
+	}
+
+	public long getResultHits(){
+		synchronized (resultLock){
+			return resultHits;
+		}
+	}
+
+	public long getResultMisses(){
+		synchronized (resultLock){
+			return resultMisses;
+		}
+	}
+
+	public long getHashHits(){
+		synchronized (hashLock){
+			return hashHits;
+		}
+	}
+
+	public long getHashMisses(){
+		synchronized (hashLock){
+			return hashMisses;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+// Runs some work on every item of a list with a pool of workers,
+// a bounded number of items ahead of the caller, and hands back
+// the results in the order of the list whatever order the workers
+// finish in. Reading, parsing and hashing query files this way
+// keeps the disk and the cores busy while the caller writes.
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class ReadAhead<T, R> implements Closeable{
+	// What to do with each item, run on a worker
+	interface Work<T, R>{
+		R run(T item);
+	}
+
+	List<T> items;
+	Work<T, R> work;
+	ExecutorService pool;
+	ArrayDeque<Future<R>> pending = new ArrayDeque<Future<R>>();
+	// At most this many items are worked on ahead of the caller
+	int window;
+	int next;
+
+	// Items before start are skipped, like queries done in an earlier run
+	ReadAhead(List<T> list, int start, int workers, Work<T, R> task){
+		items = list;
+		work = task;
+		next = start;
+		window = workers*4;
+		pool = Executors.newFixedThreadPool(workers);
+	}
+
+	boolean hasNext(){
+		return next < items.size() || !pending.isEmpty();
+	}
+
+	// Keeps the workers busy with the upcoming items, then waits for the oldest
+	R next() throws IOException{
+		while (next < items.size() && pending.size() < window){
+			final T item = items.get(next++);
+			pending.add(pool.submit(new Callable<R>(){
+				public R call(){
+					return work.run(item);
+				}
+			}));
+		}
+		try{
+			return pending.poll().get();
+		} catch(ExecutionException e){
+			throw new IOException("Query failed.", e.getCause());
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while preparing queries.");
+		}
+	}
+
+	// Workers still busy on items the caller won't take are stopped
+	public void close(){
+		pool.shutdownNow();
+	}
+}
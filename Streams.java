@@ -0,0 +1,55 @@
+// Places where a best first search still has to go, with their
+// rapids already paid for so height is below them. There is a
+// stack of them for every number of tolkens left, so the best one
+// is on top of the highest stack that isn't empty. A stream only
+// ever adds streams with as many tolkens or fewer, so that stack
+// never moves up and no ordering work is needed.
+// Subclasses keep the nodes in whatever form their tree uses, in
+// stacks laid out like the heights kept here.
+
+import java.util.*;
+
+abstract class Streams{
+	int[][] heights;
+	int[] sizes;
+	int top = -1;
+	// Stream taken by the last poll
+	int height;
+	int tolkens;
+
+	Streams(int tolerance){
+		heights = new int[tolerance+1][];
+		sizes = new int[tolerance+1];
+	}
+
+	// Gives the node stack of the given tolkens room for length nodes
+	abstract void resize(int t, int length);
+
+	// Adds a stream and returns where its node goes in its stack
+	int push(int h, int t){
+		if (heights[t] == null){
+			heights[t] = new int[16];
+			resize(t, 16);
+		} else if (sizes[t] == heights[t].length){
+			heights[t] = Arrays.copyOf(heights[t], sizes[t]*2);
+			resize(t, sizes[t]*2);
+		}
+		heights[t][sizes[t]] = h;
+		if (t > top) top = t;
+		return sizes[t]++;
+	}
+
+	boolean isEmpty(){
+		while (top >= 0 && sizes[top] == 0) top--;
+		return top < 0;
+	}
+
+	// Takes the stream with the most tolkens and returns where its
+	// node is in the stack of those tolkens. isEmpty must be checked first.
+	int pop(){
+		int last = --sizes[top];
+		height = heights[top][last];
+		tolkens = top;
+		return last;
+	}
+}
@@ -0,0 +1,18 @@
+// Holds the values referenced by the leaves of a Capillary.
+// Each value is given an int id when it is added and the
+// tree only stores those ids, so the store decides how
+// much heap each value really costs.
+
+public interface ValueStore<V>{
+	// Adds the value and returns its id. Ids are handed
+	// out sequentially starting at 0.
+	int add(V value);
+
+	// Returns the value that was added with that id
+	V get(int id);
+
+	int size();
+
+	// Releases any spare capacity once loading is done
+	void trim();
+}